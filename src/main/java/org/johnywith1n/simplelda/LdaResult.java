@@ -75,6 +75,28 @@ public class LdaResult {
         this.index = index;
     }
 
+    /**
+     * Creates the LDA Result object from probability tables that were computed
+     * elsewhere, such as by a distributed run.
+     * 
+     * @param documentTopicProbs
+     *            The probability table between documents and topics.
+     * @param topicTermProbs
+     *            The probability table between topics and terms.
+     * @param index
+     *            The term index mapping the terms to the columns of
+     *            topicTermProbs.
+     */
+    public LdaResult ( double[][] documentTopicProbs,
+            double[][] topicTermProbs, TermIndex index ) {
+        this.numDocuments = documentTopicProbs.length;
+        this.numTopics = topicTermProbs.length;
+        this.numTerms = index.getTermCount ();
+        this.documentTopicProbs = documentTopicProbs;
+        this.topicTermProbs = topicTermProbs;
+        this.index = index;
+    }
+
     /**
      * Get the term for <I>indexNumber</i> where <I>indexNumber</i> is the index
      * of the topic to terms probability table.
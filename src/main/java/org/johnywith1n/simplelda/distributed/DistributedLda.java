@@ -0,0 +1,419 @@
+package org.johnywith1n.simplelda.distributed;
+
+import gov.sandia.cognition.text.term.DefaultTerm;
+import gov.sandia.cognition.text.term.DefaultTermIndex;
+import gov.sandia.cognition.text.term.TermIndex;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import org.johnywith1n.simplelda.LdaConfig;
+import org.johnywith1n.simplelda.LdaResult;
+
+/**
+ * Coordinates a distributed LDA run across worker and parameter server
+ * processes.
+ * 
+ * The coordinator listens for a fixed number of workers (see LdaWorker), each
+ * of which owns a shard of the documents. Once every worker has sent its
+ * vocabulary the coordinator assigns global term ids, resets the parameter
+ * servers (see ParameterServer) and hands each worker its term ids and the
+ * sampling settings. When every worker has finished, the coordinator collects
+ * the document-topic probabilities from the workers and the topic-term counts
+ * from the servers. The servers are shut down when the run ends, whether it
+ * succeeded or failed; a server that cannot be shut down fails an otherwise
+ * successful run, and is attached as a suppressed exception to a failed one.
+ * A coordinator that is never run should be closed to release its port.
+ * 
+ * Every wait on the network is bounded by a timeout: accepting each worker,
+ * each reply from a server and each message from a worker. Workers send
+ * heartbeats while they train, so the timeout bounds how long a worker may stay
+ * silent rather than how long training may take.
+ * 
+ * The protocol has no authentication, so the coordinator listens on the
+ * loopback address unless a bind address is given explicitly.
+ */
+public class DistributedLda implements Closeable {
+
+    /**
+     * The default network timeout in milliseconds.
+     */
+    public static final int               DEFAULT_TIMEOUT_MILLIS = 60000;
+
+    private final LdaConfig               config;
+
+    private final List<InetSocketAddress> servers;
+
+    private final int                     workerCount;
+
+    private final int                     timeoutMillis;
+
+    private final ServerSocket            serverSocket;
+
+    /**
+     * Creates a coordinator and starts listening for workers on <i>port</i> of
+     * the loopback address, using the default timeout.
+     * 
+     * @param config
+     *            The config object. The random number generator is used to
+     *            seed the workers.
+     * @param servers
+     *            The addresses of the parameter servers. The index of a server
+     *            in this list is the shard it holds.
+     * @param workerCount
+     *            The number of workers to wait for.
+     * @param port
+     *            The port to listen for workers on, or 0 to pick any free port.
+     * @throws IllegalArgumentException
+     *             If there are no servers, a server is listed twice or there
+     *             are no workers.
+     * @throws IOException
+     *             If the port cannot be bound.
+     */
+    public DistributedLda ( LdaConfig config, List<InetSocketAddress> servers,
+            int workerCount, int port ) throws IOException {
+        this ( config, servers, workerCount, InetAddress.getLoopbackAddress (),
+                port, DEFAULT_TIMEOUT_MILLIS );
+    }
+
+    /**
+     * Creates a coordinator and starts listening for workers on <i>port</i> of
+     * <i>bindAddress</i>.
+     * 
+     * @param config
+     *            The config object. The random number generator is used to
+     *            seed the workers.
+     * @param servers
+     *            The addresses of the parameter servers. The index of a server
+     *            in this list is the shard it holds.
+     * @param workerCount
+     *            The number of workers to wait for.
+     * @param bindAddress
+     *            The local address to listen for workers on.
+     * @param port
+     *            The port to listen for workers on, or 0 to pick any free port.
+     * @param timeoutMillis
+     *            The longest the coordinator waits for a worker to connect or
+     *            for any single message, in milliseconds.
+     * @throws IllegalArgumentException
+     *             If there are no servers, a server is listed twice, there are
+     *             no workers or the timeout is not positive.
+     * @throws IOException
+     *             If the port cannot be bound.
+     */
+    public DistributedLda ( LdaConfig config, List<InetSocketAddress> servers,
+            int workerCount, InetAddress bindAddress, int port,
+            int timeoutMillis ) throws IOException {
+        if (servers == null || servers.isEmpty ())
+            throw new IllegalArgumentException (
+                    "At least one parameter server is required" );
+        if (new HashSet<> ( servers ).size () != servers.size ())
+            throw new IllegalArgumentException (
+                    "Parameter servers must not be listed twice: " + servers );
+        if (workerCount < 1)
+            throw new IllegalArgumentException (
+                    "At least one worker is required: " + workerCount );
+        if (timeoutMillis < 1)
+            throw new IllegalArgumentException ( "The timeout must be positive: "
+                    + timeoutMillis );
+
+        this.config = config;
+        this.servers = new ArrayList<> ( servers );
+        this.workerCount = workerCount;
+        this.timeoutMillis = timeoutMillis;
+        this.serverSocket = new ServerSocket ( port, 0, bindAddress );
+        this.serverSocket.setSoTimeout ( timeoutMillis );
+    }
+
+    /**
+     * Get the port this coordinator is listening for workers on.
+     * 
+     * @return The port.
+     */
+    public int getPort () {
+        return serverSocket.getLocalPort ();
+    }
+
+    /**
+     * Stops listening for workers. runLda does this itself when it returns, so
+     * this is only needed when a coordinator is created but never run.
+     */
+    @Override
+    public void close () throws IOException {
+        serverSocket.close ();
+    }
+
+    /**
+     * Waits for the workers, runs LDA over their documents and returns the
+     * result. The documents of worker 0 come first in the result, followed by
+     * those of worker 1 and so on.
+     * 
+     * The document-topic probabilities are averaged over the samples taken
+     * after burn-in. Unlike SimpleLda, the topic-term probabilities are not
+     * averaged; they come from the final counts held by the servers.
+     * 
+     * @return The LDA result object.
+     * @throws IOException
+     *             If talking to a worker or a parameter server fails or times
+     *             out, or a server could not be shut down afterwards.
+     */
+    public LdaResult runLda () throws IOException {
+        List<Connection> connections = new ArrayList<> ();
+        Throwable failure = null;
+
+        try {
+            Connection[] workers = new Connection[workerCount];
+            int[] documentCounts = new int[workerCount];
+            List<List<String>> vocabularies = new ArrayList<> ();
+            for (int i = 0; i < workerCount; i++)
+                vocabularies.add ( null );
+
+            for (int i = 0; i < workerCount; i++) {
+                Connection worker = new Connection ( serverSocket.accept (),
+                        timeoutMillis );
+                connections.add ( worker );
+
+                DataInputStream in = worker.in;
+                int rank = in.readInt ();
+                if (rank < 0 || rank >= workerCount || workers[rank] != null)
+                    throw new IOException ( "Invalid worker rank: " + rank );
+
+                workers[rank] = worker;
+                documentCounts[rank] = in.readInt ();
+                List<String> vocabulary = new ArrayList<> ();
+                int size = in.readInt ();
+                for (int t = 0; t < size; t++)
+                    vocabulary.add ( in.readUTF () );
+                vocabularies.set ( rank, vocabulary );
+            }
+
+            TermIndex index = new DefaultTermIndex ();
+            Map<String, Integer> termIds = new LinkedHashMap<> ();
+            vocabularies.forEach ( ( vocabulary ) -> vocabulary
+                    .forEach ( ( term ) -> {
+                        if (!termIds.containsKey ( term )) {
+                            termIds.put ( term, termIds.size () );
+                            index.add ( new DefaultTerm ( term ) );
+                        }
+                    } ) );
+            int termCount = termIds.size ();
+
+            List<Connection> serverConnections = new ArrayList<> ();
+            for (InetSocketAddress address : servers) {
+                Connection server = connect ( address );
+                connections.add ( server );
+                serverConnections.add ( server );
+
+                DataOutputStream out = server.out;
+                out.writeByte ( Protocol.INIT );
+                out.writeInt ( serverConnections.size () - 1 );
+                out.writeInt ( servers.size () );
+                out.writeInt ( config.topicCount );
+                out.writeInt ( termCount );
+                out.flush ();
+                Protocol.readAck ( server.in );
+            }
+
+            for (int rank = 0; rank < workerCount; rank++) {
+                DataOutputStream out = workers[rank].out;
+                out.writeDouble ( config.alpha );
+                out.writeDouble ( config.beta );
+                out.writeInt ( config.topicCount );
+                out.writeInt ( config.maxIterations );
+                out.writeInt ( config.burnInInterations );
+                out.writeInt ( config.iterationsPerSamples );
+                out.writeLong ( config.random.nextLong () );
+                out.writeInt ( timeoutMillis );
+                out.writeInt ( termCount );
+                out.writeInt ( servers.size () );
+                for (InetSocketAddress address : servers) {
+                    out.writeUTF ( address.getHostString () );
+                    out.writeInt ( address.getPort () );
+                }
+                Protocol.writeInts ( out, vocabularies.get ( rank ).stream ()
+                        .mapToInt ( termIds::get ).toArray () );
+                out.flush ();
+            }
+
+            List<double[]> documentTopicProbs = new ArrayList<> ();
+            for (int rank = 0; rank < workerCount; rank++) {
+                DataInputStream in = workers[rank].in;
+                byte message;
+                while ((message = in.readByte ()) == Protocol.HEARTBEAT)
+                    ;
+                if (message != Protocol.RESULT)
+                    throw new IOException ( "Unexpected message from worker "
+                            + rank + ": " + message );
+
+                for (int d = 0; d < documentCounts[rank]; d++) {
+                    double[] row = new double[config.topicCount];
+                    for (int k = 0; k < row.length; k++)
+                        row[k] = in.readDouble ();
+                    documentTopicProbs.add ( row );
+                }
+            }
+
+            double[][] topicTermProbs = collectTopicTermProbs (
+                    serverConnections, termCount );
+
+            for (Connection worker : workers) {
+                worker.out.writeByte ( Protocol.ACK );
+                worker.out.flush ();
+            }
+
+            return new LdaResult (
+                    documentTopicProbs.toArray ( new double[0][] ),
+                    topicTermProbs, index );
+        } catch (Throwable e) {
+            failure = e;
+            throw e;
+        } finally {
+            IOException shutdownFailure = shutdownServers ();
+            for (Connection connection : connections)
+                connection.close ();
+            close ();
+
+            if (shutdownFailure != null) {
+                if (failure != null)
+                    failure.addSuppressed ( shutdownFailure );
+                else
+                    throw shutdownFailure;
+            }
+        }
+    }
+
+    /**
+     * Stops every parameter server over a fresh connection, so servers are
+     * stopped even when the run failed part way through a message. Every
+     * server is tried even if an earlier one fails.
+     * 
+     * @return An exception describing the servers that could not be shut
+     *         down, or null if they all were.
+     */
+    private IOException shutdownServers () {
+        IOException failure = null;
+
+        for (InetSocketAddress address : servers) {
+            try (Connection server = connect ( address )) {
+                server.out.writeByte ( Protocol.SHUTDOWN );
+                server.out.flush ();
+                Protocol.readAck ( server.in );
+            } catch (IOException e) {
+                IOException error = new IOException (
+                        "Could not shut down parameter server " + address, e );
+                if (failure == null)
+                    failure = error;
+                else
+                    failure.addSuppressed ( error );
+            }
+        }
+
+        return failure;
+    }
+
+    /**
+     * Opens a connection to a parameter server.
+     * 
+     * @param address
+     *            The address of the server.
+     * @return The connection.
+     * @throws IOException
+     *             If the server cannot be reached within the timeout.
+     */
+    private Connection connect ( InetSocketAddress address ) throws IOException {
+        Socket socket = new Socket ();
+        try {
+            socket.connect ( address, timeoutMillis );
+            return new Connection ( socket, timeoutMillis );
+        } catch (IOException e) {
+            socket.close ();
+            throw e;
+        }
+    }
+
+    /**
+     * Pulls the final topic-term counts from the servers and turns them into
+     * probabilities.
+     * 
+     * @param serverConnections
+     *            The connections to the servers, in shard order.
+     * @param termCount
+     *            The number of unique terms in the corpus.
+     * @return The probability table between topics and terms.
+     * @throws IOException
+     *             If talking to a server fails.
+     */
+    private double[][] collectTopicTermProbs (
+            List<Connection> serverConnections, int termCount )
+            throws IOException {
+        int shardCount = serverConnections.size ();
+        int[][] counts = new int[config.topicCount][termCount];
+        int[] topicCounts = new int[config.topicCount];
+
+        for (int s = 0; s < shardCount; s++) {
+            int shard = s;
+            int[] terms = IntStream.range ( 0, termCount )
+                    .filter ( ( term ) -> term % shardCount == shard )
+                    .toArray ();
+
+            DataOutputStream out = serverConnections.get ( s ).out;
+            out.writeByte ( Protocol.REGISTER );
+            Protocol.writeInts ( out, terms );
+            out.writeByte ( Protocol.PULL );
+            out.flush ();
+
+            DataInputStream in = serverConnections.get ( s ).in;
+            int[] totals = Protocol.readInts ( in );
+            for (int k = 0; k < config.topicCount; k++)
+                topicCounts[k] += totals[k];
+            for (int term : terms)
+                for (int k = 0; k < config.topicCount; k++)
+                    counts[k][term] = in.readInt ();
+        }
+
+        double[][] probs = new double[config.topicCount][termCount];
+        for (int k = 0; k < config.topicCount; k++) {
+            double norm = topicCounts[k] + termCount * config.beta;
+            for (int term = 0; term < termCount; term++)
+                probs[k][term] = (counts[k][term] + config.beta) / norm;
+        }
+        return probs;
+    }
+
+    /**
+     * A socket with buffered data streams wrapped around it.
+     */
+    private static class Connection implements Closeable {
+        final Socket           socket;
+        final DataInputStream  in;
+        final DataOutputStream out;
+
+        Connection ( Socket socket, int timeoutMillis ) throws IOException {
+            socket.setSoTimeout ( timeoutMillis );
+            this.socket = socket;
+            this.in = new DataInputStream ( new BufferedInputStream (
+                    socket.getInputStream () ) );
+            this.out = new DataOutputStream ( new BufferedOutputStream (
+                    socket.getOutputStream () ) );
+        }
+
+        @Override
+        public void close () throws IOException {
+            socket.close ();
+        }
+    }
+}
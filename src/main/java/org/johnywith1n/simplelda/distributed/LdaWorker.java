@@ -0,0 +1,446 @@
+package org.johnywith1n.simplelda.distributed;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Runs collapsed Gibbs sampling over one shard of the documents in a
+ * distributed LDA run.
+ * 
+ * The worker keeps the topic assignments and document-topic counts for its own
+ * documents and a local copy of the topic-term counts for the terms that occur
+ * in them. Every iteration it pulls fresh counts from the parameter servers,
+ * sweeps its documents once and pushes the changes it made back as deltas.
+ * Workers never wait for each other, so the counts a worker samples with can
+ * be slightly stale.
+ * 
+ * Each worker registers its terms with the servers once, so a pull is a single
+ * opcode. The reply is still dense: every pull transfers a full row of topic
+ * counts for every term in the worker's documents, so the traffic per
+ * iteration grows with the worker's vocabulary times the number of topics.
+ */
+public class LdaWorker {
+
+    private final List<List<String>> documents;
+
+    /**
+     * Creates a worker for a shard of tokenized documents.
+     * 
+     * @param documents
+     *            The documents owned by this worker.
+     */
+    public LdaWorker ( List<List<String>> documents ) {
+        this.documents = documents;
+    }
+
+    /**
+     * Connects to the coordinator, trains on this worker's documents and sends
+     * the document-topic probabilities back to the coordinator.
+     * 
+     * @param host
+     *            The coordinator host.
+     * @param port
+     *            The coordinator port.
+     * @param rank
+     *            The index of this worker. The documents of worker 0 come first
+     *            in the result, followed by those of worker 1 and so on.
+     * @throws IOException
+     *             If talking to the coordinator or a parameter server fails,
+     *             or a parameter server does not answer within the
+     *             coordinator's timeout. The coordinator connection has no read
+     *             timeout, since the final acknowledgement only comes once
+     *             every other worker has finished too.
+     */
+    public void run ( String host, int port, int rank ) throws IOException {
+        Map<String, Integer> vocabulary = new LinkedHashMap<> ();
+        int[][] docs = new int[documents.size ()][];
+
+        for (int d = 0; d < docs.length; d++)
+            docs[d] = documents.get ( d ).stream ().mapToInt ( ( token ) -> {
+                return vocabulary.computeIfAbsent ( token,
+                        ( t ) -> vocabulary.size () );
+            } ).toArray ();
+
+        try (Socket socket = new Socket ( host, port )) {
+            DataInputStream in = new DataInputStream ( new BufferedInputStream (
+                    socket.getInputStream () ) );
+            DataOutputStream out = new DataOutputStream (
+                    new BufferedOutputStream ( socket.getOutputStream () ) );
+
+            out.writeInt ( rank );
+            out.writeInt ( docs.length );
+            out.writeInt ( vocabulary.size () );
+            for (String term : vocabulary.keySet ())
+                out.writeUTF ( term );
+            out.flush ();
+
+            double alpha = in.readDouble ();
+            double beta = in.readDouble ();
+            int topicCount = in.readInt ();
+            int maxIterations = in.readInt ();
+            int burnInIterations = in.readInt ();
+            int iterationsPerSample = in.readInt ();
+            Random random = new Random ( in.readLong () );
+            int timeoutMillis = in.readInt ();
+            int termCount = in.readInt ();
+
+            List<Socket> servers = new ArrayList<> ();
+            Heartbeat heartbeat = new Heartbeat ( out );
+            Timer timer = new Timer ( "lda-worker-heartbeat", true );
+            timer.schedule ( heartbeat, 0, Math.max ( 1, timeoutMillis / 4 ) );
+            try {
+                int serverCount = in.readInt ();
+                for (int i = 0; i < serverCount; i++) {
+                    Socket server = new Socket ();
+                    servers.add ( server );
+                    server.connect ( new InetSocketAddress ( in.readUTF (),
+                            in.readInt () ), timeoutMillis );
+                    server.setSoTimeout ( timeoutMillis );
+                    server.setTcpNoDelay ( true );
+                }
+                int[] globalIds = Protocol.readInts ( in );
+
+                Sampler sampler = new Sampler ( docs, globalIds, servers,
+                        alpha, beta, topicCount, termCount, random );
+                double[][] probs = sampler.train ( maxIterations,
+                        burnInIterations, iterationsPerSample );
+
+                synchronized (out) {
+                    heartbeat.stop ();
+                    out.writeByte ( Protocol.RESULT );
+                    for (double[] row : probs)
+                        for (double prob : row)
+                            out.writeDouble ( prob );
+                    out.flush ();
+                }
+                Protocol.readAck ( in );
+            } finally {
+                timer.cancel ();
+                for (Socket server : servers)
+                    server.close ();
+            }
+        }
+    }
+
+    /**
+     * Tells the coordinator the worker is still alive. Runs on a timer thread
+     * from the moment the settings are read, so the coordinator's timeout does
+     * not depend on how long setup or a single iteration takes. Writes are
+     * synchronized on the coordinator stream so a heartbeat never lands inside
+     * the result.
+     */
+    private static class Heartbeat extends TimerTask {
+        private final DataOutputStream out;
+        private boolean                stopped;
+
+        Heartbeat ( DataOutputStream out ) {
+            this.out = out;
+        }
+
+        @Override
+        public void run () {
+            synchronized (out) {
+                if (stopped)
+                    return;
+                try {
+                    out.writeByte ( Protocol.HEARTBEAT );
+                    out.flush ();
+                } catch (IOException e) {
+                    // The coordinator is gone; the training thread will find
+                    // out on its own when it reports the result.
+                    stop ();
+                }
+            }
+        }
+
+        /**
+         * Stops sending heartbeats. Must be called while holding the lock on
+         * the coordinator stream.
+         */
+        void stop () {
+            stopped = true;
+            cancel ();
+        }
+    }
+
+    /**
+     * The sampling state of a single worker.
+     */
+    private static class Sampler {
+        private final int[][]            docs;
+        private final int[][]            assignments;
+        private final int[][]            docTopicCounts;
+
+        /**
+         * Local copy of the topic-term counts. The first index is the local
+         * term id and the second index is the topic.
+         */
+        private final int[][]            termTopicCounts;
+        private final int[]              topicCounts;
+
+        /**
+         * Changes made to the topic-term counts since the last push.
+         */
+        private final int[][]            deltas;
+
+        /**
+         * The local and global term ids of the terms held by each server.
+         */
+        private final int[][]            localIdsByServer;
+        private final int[][]            globalIdsByServer;
+
+        private final DataInputStream[]  serverIns;
+        private final DataOutputStream[] serverOuts;
+
+        private final double             alpha;
+        private final double             beta;
+        private final int                topicCount;
+        private final int                termCount;
+        private final Random             random;
+
+        Sampler ( int[][] docs, int[] globalIds, List<Socket> servers,
+                double alpha, double beta, int topicCount, int termCount,
+                Random random ) throws IOException {
+            this.docs = docs;
+            this.alpha = alpha;
+            this.beta = beta;
+            this.topicCount = topicCount;
+            this.termCount = termCount;
+            this.random = random;
+
+            this.assignments = new int[docs.length][];
+            this.docTopicCounts = new int[docs.length][topicCount];
+            this.termTopicCounts = new int[globalIds.length][topicCount];
+            this.topicCounts = new int[topicCount];
+            this.deltas = new int[globalIds.length][topicCount];
+
+            int serverCount = servers.size ();
+            this.localIdsByServer = new int[serverCount][];
+            this.globalIdsByServer = new int[serverCount][];
+            this.serverIns = new DataInputStream[serverCount];
+            this.serverOuts = new DataOutputStream[serverCount];
+
+            for (int s = 0; s < serverCount; s++) {
+                int shard = s;
+                localIdsByServer[s] = IntStream.range ( 0, globalIds.length )
+                        .filter ( ( local ) -> globalIds[local] % serverCount == shard )
+                        .toArray ();
+                globalIdsByServer[s] = Arrays.stream ( localIdsByServer[s] )
+                        .map ( ( local ) -> globalIds[local] ).toArray ();
+                serverIns[s] = new DataInputStream ( new BufferedInputStream (
+                        servers.get ( s ).getInputStream () ) );
+                serverOuts[s] = new DataOutputStream (
+                        new BufferedOutputStream ( servers.get ( s )
+                                .getOutputStream () ) );
+
+                serverOuts[s].writeByte ( Protocol.REGISTER );
+                Protocol.writeInts ( serverOuts[s], globalIdsByServer[s] );
+                serverOuts[s].flush ();
+            }
+        }
+
+        /**
+         * Runs the sampler and returns the document-topic probabilities,
+         * averaged over the samples taken after burn-in.
+         */
+        double[][] train ( int maxIterations, int burnInIterations,
+                int iterationsPerSample ) throws IOException {
+            double[][] probs = new double[docs.length][topicCount];
+            int sampleCount = 0;
+
+            initialize ();
+            push ();
+
+            for (int iteration = 0; iteration < maxIterations; iteration++) {
+                pull ();
+                sweep ();
+                push ();
+
+                if (iteration >= burnInIterations
+                        && (iteration - burnInIterations)
+                                % Math.max ( 1, iterationsPerSample ) == 0) {
+                    addDocumentTopicProbs ( probs );
+                    sampleCount++;
+                }
+            }
+
+            if (sampleCount == 0) {
+                addDocumentTopicProbs ( probs );
+                sampleCount = 1;
+            }
+
+            for (double[] row : probs)
+                for (int k = 0; k < topicCount; k++)
+                    row[k] /= sampleCount;
+
+            flush ();
+            return probs;
+        }
+
+        /**
+         * Assigns every token to a random topic.
+         */
+        private void initialize () {
+            for (int d = 0; d < docs.length; d++) {
+                assignments[d] = new int[docs[d].length];
+                for (int i = 0; i < docs[d].length; i++) {
+                    int topic = random.nextInt ( topicCount );
+                    assignments[d][i] = topic;
+                    docTopicCounts[d][topic]++;
+                    deltas[docs[d][i]][topic]++;
+                }
+            }
+        }
+
+        /**
+         * Resamples the topic of every token once.
+         */
+        private void sweep () {
+            double[] weights = new double[topicCount];
+            double termBeta = termCount * beta;
+
+            for (int d = 0; d < docs.length; d++) {
+                for (int i = 0; i < docs[d].length; i++) {
+                    int term = docs[d][i];
+                    int oldTopic = assignments[d][i];
+
+                    docTopicCounts[d][oldTopic]--;
+                    termTopicCounts[term][oldTopic]--;
+                    topicCounts[oldTopic]--;
+
+                    double total = 0.0;
+                    for (int k = 0; k < topicCount; k++) {
+                        // Counts from other workers are stale, so they can dip
+                        // below zero after removing this token.
+                        int termTopic = Math.max ( 0, termTopicCounts[term][k] );
+                        int topic = Math.max ( 0, topicCounts[k] );
+                        total += (docTopicCounts[d][k] + alpha)
+                                * (termTopic + beta) / (topic + termBeta);
+                        weights[k] = total;
+                    }
+
+                    double choice = random.nextDouble () * total;
+                    int newTopic = 0;
+                    while (newTopic < topicCount - 1
+                            && choice >= weights[newTopic])
+                        newTopic++;
+
+                    assignments[d][i] = newTopic;
+                    docTopicCounts[d][newTopic]++;
+                    termTopicCounts[term][newTopic]++;
+                    topicCounts[newTopic]++;
+
+                    if (newTopic != oldTopic) {
+                        deltas[term][oldTopic]--;
+                        deltas[term][newTopic]++;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Adds the current document-topic probabilities to <i>probs</i>.
+         */
+        private void addDocumentTopicProbs ( double[][] probs ) {
+            for (int d = 0; d < docs.length; d++) {
+                double norm = docs[d].length + topicCount * alpha;
+                for (int k = 0; k < topicCount; k++)
+                    probs[d][k] += (docTopicCounts[d][k] + alpha) / norm;
+            }
+        }
+
+        /**
+         * Sends the non-zero deltas to the servers holding their terms and
+         * clears them.
+         */
+        private void push () throws IOException {
+            for (int s = 0; s < serverOuts.length; s++) {
+                Protocol.writeDeltas ( serverOuts[s], deltas,
+                        localIdsByServer[s], globalIdsByServer[s],
+                        Protocol.PUSH_CHUNK );
+                serverOuts[s].flush ();
+            }
+        }
+
+        /**
+         * Replaces the local topic-term counts with fresh counts from the
+         * servers.
+         */
+        private void pull () throws IOException {
+            for (int s = 0; s < serverOuts.length; s++) {
+                serverOuts[s].writeByte ( Protocol.PULL );
+                serverOuts[s].flush ();
+            }
+
+            Arrays.fill ( topicCounts, 0 );
+            for (int s = 0; s < serverIns.length; s++) {
+                DataInputStream in = serverIns[s];
+                int[] totals = Protocol.readInts ( in );
+                for (int k = 0; k < topicCount; k++)
+                    topicCounts[k] += totals[k];
+                for (int local : localIdsByServer[s])
+                    for (int k = 0; k < topicCount; k++)
+                        termTopicCounts[local][k] = in.readInt ();
+            }
+        }
+
+        /**
+         * Waits until every server has applied the pushed deltas.
+         */
+        private void flush () throws IOException {
+            for (DataOutputStream out : serverOuts) {
+                out.writeByte ( Protocol.FLUSH );
+                out.flush ();
+            }
+            for (DataInputStream in : serverIns)
+                Protocol.readAck ( in );
+        }
+    }
+
+    /**
+     * Starts a worker. The arguments are the coordinator host, the coordinator
+     * port, the rank of this worker and a file holding its documents, one
+     * document per line with tokens separated by whitespace.
+     * 
+     * @param args
+     *            The command line arguments.
+     * @throws IOException
+     *             If the documents cannot be read or the run fails.
+     */
+    public static void main ( String[] args ) throws IOException {
+        if (args.length != 4) {
+            System.err
+                    .println ( "Usage: LdaWorker <coordinator host> <coordinator port> <rank> <documents file>" );
+            System.exit ( 1 );
+        }
+
+        List<List<String>> documents = Files
+                .readAllLines ( Paths.get ( args[3] ), StandardCharsets.UTF_8 )
+                .stream ().map ( ( line ) -> {
+                    String trimmed = line.trim ();
+                    return trimmed.isEmpty () ? new ArrayList<String> ()
+                            : Arrays.asList ( trimmed.split ( "\\s+" ) );
+                } ).collect ( Collectors.toList () );
+
+        new LdaWorker ( documents ).run ( args[0],
+                Integer.parseInt ( args[1] ), Integer.parseInt ( args[2] ) );
+    }
+}
@@ -0,0 +1,301 @@
+package org.johnywith1n.simplelda.distributed;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+
+/**
+ * Holds one shard of the global topic-term counts for a distributed LDA run.
+ * Term ids are split across shards by term id modulo the shard count, so a
+ * server with shard index s holds the terms s, s + shardCount, s + 2 *
+ * shardCount, and so on. The shard layout is sent by the coordinator when a
+ * run starts, so a server only needs to know which port to listen on.
+ * 
+ * The protocol has no authentication; any client that can reach the port can
+ * reset or stop the server. Servers therefore listen on the loopback address
+ * unless a bind address is given explicitly.
+ * 
+ * Every connection is served by its own thread. Workers push count deltas and
+ * pull fresh counts whenever they like; there is no barrier between workers.
+ */
+public class ParameterServer implements Closeable {
+
+    private final ServerSocket serverSocket;
+
+    private volatile boolean   running = true;
+
+    private int                shardIndex;
+
+    private int                shardCount = 1;
+
+    /**
+     * The counts for the terms in this shard. The first index is the term id
+     * divided by the shard count and the second index is the topic.
+     */
+    private int[][]            termTopicCounts = new int[0][];
+
+    /**
+     * The number of tokens from the terms in this shard assigned to each topic.
+     */
+    private int[]              topicCounts = new int[0];
+
+    /**
+     * Creates a parameter server listening on <i>port</i> of the loopback
+     * address.
+     * 
+     * @param port
+     *            The port to listen on, or 0 to pick any free port.
+     * @throws IOException
+     *             If the port cannot be bound.
+     */
+    public ParameterServer ( int port ) throws IOException {
+        this ( InetAddress.getLoopbackAddress (), port );
+    }
+
+    /**
+     * Creates a parameter server listening on <i>port</i> of
+     * <i>bindAddress</i>.
+     * 
+     * @param bindAddress
+     *            The local address to listen on.
+     * @param port
+     *            The port to listen on, or 0 to pick any free port.
+     * @throws IOException
+     *             If the port cannot be bound.
+     */
+    public ParameterServer ( InetAddress bindAddress, int port )
+            throws IOException {
+        this.serverSocket = new ServerSocket ( port, 0, bindAddress );
+    }
+
+    /**
+     * Get the port this server is listening on.
+     * 
+     * @return The port.
+     */
+    public int getPort () {
+        return serverSocket.getLocalPort ();
+    }
+
+    /**
+     * Accepts connections until a shutdown message is received or the server
+     * is closed.
+     * 
+     * @throws IOException
+     *             If accepting a connection fails for any other reason.
+     */
+    public void serve () throws IOException {
+        try {
+            while (running) {
+                Socket socket = serverSocket.accept ();
+                Thread thread = new Thread ( () -> handle ( socket ),
+                        "parameter-server-" + socket.getRemoteSocketAddress () );
+                thread.setDaemon ( true );
+                thread.start ();
+            }
+        } catch (SocketException e) {
+            if (running)
+                throw e;
+        } finally {
+            close ();
+        }
+    }
+
+    @Override
+    public void close () throws IOException {
+        running = false;
+        serverSocket.close ();
+    }
+
+    /**
+     * Reads and answers messages from a single connection until it is closed.
+     * 
+     * @param socket
+     *            The connection.
+     */
+    private void handle ( Socket socket ) {
+        try (Socket s = socket) {
+            s.setTcpNoDelay ( true );
+            DataInputStream in = new DataInputStream ( new BufferedInputStream (
+                    s.getInputStream () ) );
+            DataOutputStream out = new DataOutputStream (
+                    new BufferedOutputStream ( s.getOutputStream () ) );
+            int[] registered = new int[0];
+
+            while (true) {
+                byte opcode;
+                try {
+                    opcode = in.readByte ();
+                } catch (EOFException e) {
+                    return;
+                }
+
+                switch (opcode) {
+                case Protocol.INIT:
+                    init ( in.readInt (), in.readInt (), in.readInt (),
+                            in.readInt () );
+                    out.writeByte ( Protocol.ACK );
+                    out.flush ();
+                    break;
+                case Protocol.REGISTER:
+                    registered = Protocol.readInts ( in );
+                    break;
+                case Protocol.PUSH:
+                    int[] terms = Protocol.readInts ( in );
+                    int[] topics = Protocol.readInts ( in );
+                    int[] deltas = Protocol.readInts ( in );
+                    applyDeltas ( terms, topics, deltas );
+                    break;
+                case Protocol.PULL:
+                    writeCounts ( registered, out );
+                    out.flush ();
+                    break;
+                case Protocol.FLUSH:
+                    out.writeByte ( Protocol.ACK );
+                    out.flush ();
+                    break;
+                case Protocol.SHUTDOWN:
+                    out.writeByte ( Protocol.ACK );
+                    out.flush ();
+                    close ();
+                    return;
+                default:
+                    throw new IOException ( "Unknown opcode: " + opcode );
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            if (running)
+                System.err.println ( "Parameter server connection failed: "
+                        + e );
+        }
+    }
+
+    /**
+     * Resets this server to hold the given shard with all counts at zero.
+     * 
+     * @param shardIndex
+     *            The index of the shard held by this server.
+     * @param shardCount
+     *            The total number of shards.
+     * @param topicCount
+     *            The number of topics.
+     * @param termCount
+     *            The number of unique terms in the whole corpus.
+     */
+    synchronized void init ( int shardIndex, int shardCount, int topicCount,
+            int termCount ) {
+        this.shardIndex = shardIndex;
+        this.shardCount = shardCount;
+
+        int rows = Math.max ( 0, (termCount - shardIndex + shardCount - 1)
+                / shardCount );
+        this.termTopicCounts = new int[rows][topicCount];
+        this.topicCounts = new int[topicCount];
+    }
+
+    /**
+     * Adds a batch of deltas to the counts.
+     * 
+     * @param terms
+     *            The global term ids.
+     * @param topics
+     *            The topics.
+     * @param deltas
+     *            The amounts to add to the count for each term and topic.
+     */
+    synchronized void applyDeltas ( int[] terms, int[] topics, int[] deltas ) {
+        for (int i = 0; i < terms.length; i++) {
+            termTopicCounts[localRow ( terms[i] )][topics[i]] += deltas[i];
+            topicCounts[topics[i]] += deltas[i];
+        }
+    }
+
+    /**
+     * Writes the topic totals and the rows for the requested terms.
+     * 
+     * @param terms
+     *            The global term ids to write rows for.
+     * @param out
+     *            The stream to write to.
+     * @throws IOException
+     *             If the stream cannot be written to.
+     */
+    private void writeCounts ( int[] terms, DataOutputStream out )
+            throws IOException {
+        int[][] counts = readCounts ( terms );
+
+        Protocol.writeInts ( out, counts[0] );
+        for (int i = 1; i < counts.length; i++)
+            for (int count : counts[i])
+                out.writeInt ( count );
+    }
+
+    /**
+     * Takes a consistent copy of the topic totals and the rows for the
+     * requested terms.
+     * 
+     * @param terms
+     *            The global term ids to copy rows for.
+     * @return The topic totals of this shard, followed by the rows for the
+     *         requested terms in the same order.
+     */
+    synchronized int[][] readCounts ( int[] terms ) {
+        int[][] counts = new int[terms.length + 1][];
+        counts[0] = topicCounts.clone ();
+        for (int i = 0; i < terms.length; i++)
+            counts[i + 1] = termTopicCounts[localRow ( terms[i] )].clone ();
+        return counts;
+    }
+
+    /**
+     * Get the row in termTopicCounts for a global term id.
+     * 
+     * @param term
+     *            The global term id.
+     * @return The row index.
+     */
+    private int localRow ( int term ) {
+        if (term % shardCount != shardIndex)
+            throw new IllegalArgumentException ( "Term " + term
+                    + " does not belong to shard " + shardIndex );
+        if (term / shardCount >= termTopicCounts.length)
+            throw new IllegalArgumentException ( "Term " + term
+                    + " is out of range" );
+        return term / shardCount;
+    }
+
+    /**
+     * Starts a parameter server. The arguments are the port to listen on, where
+     * 0 picks a free port, and optionally the address to listen on, which
+     * defaults to the loopback address. The bound port is printed on the first
+     * line of standard output.
+     * 
+     * @param args
+     *            The command line arguments.
+     * @throws IOException
+     *             If the server fails.
+     */
+    public static void main ( String[] args ) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println ( "Usage: ParameterServer <port> [bind address]" );
+            System.exit ( 1 );
+        }
+
+        InetAddress bindAddress = args.length > 1 ? InetAddress
+                .getByName ( args[1] ) : InetAddress.getLoopbackAddress ();
+        try (ParameterServer server = new ParameterServer ( bindAddress,
+                Integer.parseInt ( args[0] ) )) {
+            System.out.println ( server.getPort () );
+            System.out.flush ();
+            server.serve ();
+        }
+    }
+}
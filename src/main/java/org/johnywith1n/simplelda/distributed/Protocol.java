@@ -0,0 +1,217 @@
+package org.johnywith1n.simplelda.distributed;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Opcodes and helpers for the plain TCP protocol spoken between the
+ * coordinator, the workers and the parameter servers. All messages are written
+ * with DataOutputStream, so every value is big-endian.
+ */
+final class Protocol {
+
+    /**
+     * Coordinator to server: shard index, shard count, topic count, term count.
+     * Resets the counts held by the server.
+     */
+    static final byte INIT       = 1;
+
+    /**
+     * Worker or coordinator to server: the list of term ids later pulls on the
+     * same connection return rows for. No reply.
+     */
+    static final byte REGISTER   = 2;
+
+    /**
+     * Worker to server: a list of (term, topic, delta) triples. No reply.
+     */
+    static final byte PUSH       = 3;
+
+    /**
+     * Worker or coordinator to server: no arguments. The server replies with
+     * its per topic totals followed by one row of topic counts for each term
+     * registered on the connection.
+     */
+    static final byte PULL       = 4;
+
+    /**
+     * Worker to server: replies with a single byte once every message sent
+     * before it on the same connection has been applied.
+     */
+    static final byte FLUSH      = 5;
+
+    /**
+     * Coordinator to server: stops the server.
+     */
+    static final byte SHUTDOWN   = 6;
+
+    /**
+     * Worker to coordinator: the worker is still training.
+     */
+    static final byte HEARTBEAT  = 7;
+
+    /**
+     * Worker to coordinator: followed by the document-topic probabilities of
+     * the worker's documents.
+     */
+    static final byte RESULT     = 8;
+
+    /**
+     * The byte servers reply with to acknowledge a message.
+     */
+    static final byte ACK        = 0;
+
+    /**
+     * The longest int array readInts accepts, to stop a corrupt or hostile
+     * length prefix from exhausting the heap.
+     */
+    static final int  MAX_INTS   = 1 << 26;
+
+    /**
+     * The most deltas sent in one PUSH message. Larger pushes are split into
+     * several messages, which keeps each one well under MAX_INTS and bounds the
+     * memory needed to build it.
+     */
+    static final int  PUSH_CHUNK = 1 << 20;
+
+    private Protocol () {
+    }
+
+    /**
+     * Writes an int array prefixed by its length.
+     * 
+     * @param out
+     *            The stream to write to.
+     * @param values
+     *            The values to write.
+     * @throws IOException
+     *             If the stream cannot be written to.
+     */
+    static void writeInts ( DataOutputStream out, int[] values )
+            throws IOException {
+        writeInts ( out, values, values.length );
+    }
+
+    /**
+     * Writes the first <i>length</i> values of an int array prefixed by
+     * <i>length</i>.
+     * 
+     * @param out
+     *            The stream to write to.
+     * @param values
+     *            The values to write.
+     * @param length
+     *            The number of values to write.
+     * @throws IOException
+     *             If the stream cannot be written to.
+     */
+    static void writeInts ( DataOutputStream out, int[] values, int length )
+            throws IOException {
+        out.writeInt ( length );
+        for (int i = 0; i < length; i++)
+            out.writeInt ( values[i] );
+    }
+
+    /**
+     * Writes the non-zero entries of <i>deltas</i> as PUSH messages of at most
+     * <i>chunkSize</i> (term, topic, delta) triples each, and clears them.
+     * 
+     * @param out
+     *            The stream to write to.
+     * @param deltas
+     *            The deltas. The first index is the local term id and the
+     *            second index is the topic.
+     * @param localIds
+     *            The local ids of the rows to send.
+     * @param globalIds
+     *            The global term id for each entry of localIds.
+     * @param chunkSize
+     *            The most triples to put in one message.
+     * @throws IOException
+     *             If the stream cannot be written to.
+     */
+    static void writeDeltas ( DataOutputStream out, int[][] deltas,
+            int[] localIds, int[] globalIds, int chunkSize ) throws IOException {
+        long changes = 0;
+        for (int local : localIds)
+            for (int delta : deltas[local])
+                if (delta != 0)
+                    changes++;
+
+        int size = (int) Math.min ( changes, chunkSize );
+        int[] terms = new int[size];
+        int[] topics = new int[size];
+        int[] values = new int[size];
+        int length = 0;
+
+        for (int i = 0; i < localIds.length; i++) {
+            int[] row = deltas[localIds[i]];
+            for (int k = 0; k < row.length; k++) {
+                if (row[k] == 0)
+                    continue;
+
+                terms[length] = globalIds[i];
+                topics[length] = k;
+                values[length] = row[k];
+                row[k] = 0;
+
+                if (++length == size) {
+                    writePush ( out, terms, topics, values, length );
+                    length = 0;
+                }
+            }
+        }
+
+        if (length > 0)
+            writePush ( out, terms, topics, values, length );
+    }
+
+    /**
+     * Writes one PUSH message from the first <i>length</i> entries of the
+     * arrays.
+     */
+    private static void writePush ( DataOutputStream out, int[] terms,
+            int[] topics, int[] deltas, int length ) throws IOException {
+        out.writeByte ( PUSH );
+        writeInts ( out, terms, length );
+        writeInts ( out, topics, length );
+        writeInts ( out, deltas, length );
+    }
+
+    /**
+     * Reads an int array written by writeInts.
+     * 
+     * @param in
+     *            The stream to read from.
+     * @return The values read.
+     * @throws IOException
+     *             If the stream cannot be read from or the length is negative
+     *             or larger than MAX_INTS.
+     */
+    static int[] readInts ( DataInputStream in ) throws IOException {
+        int length = in.readInt ();
+        if (length < 0 || length > MAX_INTS)
+            throw new IOException ( "Invalid array length: " + length );
+
+        int[] values = new int[length];
+        for (int i = 0; i < values.length; i++)
+            values[i] = in.readInt ();
+        return values;
+    }
+
+    /**
+     * Reads an acknowledgement byte.
+     * 
+     * @param in
+     *            The stream to read from.
+     * @throws IOException
+     *             If the stream cannot be read from or the byte is not an
+     *             acknowledgement.
+     */
+    static void readAck ( DataInputStream in ) throws IOException {
+        byte reply = in.readByte ();
+        if (reply != ACK)
+            throw new IOException ( "Unexpected reply from server: " + reply );
+    }
+}
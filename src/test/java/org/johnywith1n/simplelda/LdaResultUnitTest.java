@@ -140,4 +140,41 @@ public class LdaResultUnitTest {
         assertThat ( topics.get ( 0 ) ).isEqualTo ( 1 );
         assertThat ( topics.get ( 1 ) ).isEqualTo ( 3 );
     }
+
+    @Test
+    public void testConstructFromProbabilityTables () {
+        TermIndex index = mock ( TermIndex.class );
+
+        Map<Integer, Term> terms = new HashMap<> ();
+        terms.put ( 0, new DefaultTerm ( "what" ) );
+        terms.put ( 1, new DefaultTerm ( "when" ) );
+        terms.put ( 2, new DefaultTerm ( "where" ) );
+
+        when ( index.getTermCount () ).thenReturn ( 3 );
+        when ( index.getTerm ( anyInt () ) ).thenAnswer ( new Answer<Term> () {
+            @Override
+            public Term answer ( InvocationOnMock invocation ) throws Throwable {
+                int index = (int) invocation.getArguments ()[0];
+                return terms.get ( index );
+            }
+        } );
+
+        double[][] documentTopicProbs = new double[][] {
+                new double[] { 0.7, 0.3 }, new double[] { 0.2, 0.8 },
+                new double[] { 0.6, 0.4 }, new double[] { 0.1, 0.9 } };
+        double[][] topicTermProbs = new double[][] {
+                new double[] { 0.5, 0.2, 0.3 }, new double[] { 0.1, 0.6, 0.3 } };
+
+        LdaResult result = new LdaResult ( documentTopicProbs, topicTermProbs,
+                index );
+
+        assertThat ( result.numDocuments ).isEqualTo ( 4 );
+        assertThat ( result.numTopics ).isEqualTo ( 2 );
+        assertThat ( result.numTerms ).isEqualTo ( 3 );
+        assertThat ( result.getTopicForDocument ( 1 ) ).isEqualTo ( 1 );
+        assertThat ( result.getTopNWordsForTopic ( 0, 1 ).get ( 0 ) )
+                .isEqualTo ( "what" );
+        assertThat ( result.getTopNWordsForTopic ( 1, 1 ).get ( 0 ) )
+                .isEqualTo ( "when" );
+    }
 }
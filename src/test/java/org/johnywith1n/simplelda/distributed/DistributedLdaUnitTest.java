@@ -0,0 +1,257 @@
+package org.johnywith1n.simplelda.distributed;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.johnywith1n.simplelda.LdaConfig;
+import org.johnywith1n.simplelda.LdaResult;
+import org.junit.Test;
+
+public class DistributedLdaUnitTest {
+
+    private static final String POKEMON    = "pokémon pokémon pokémon pokémon video games fictional world pokémon";
+    private static final String JAVA       = "java java java java computer programming language concurrent implementation";
+    private static final String DERIVATIVE = "derivative derivative derivative derivative function real variable measures sensitivity";
+
+    /**
+     * Starts a JVM running <i>mainClass</i> with the test classpath.
+     */
+    private Process startJvm ( Class<?> mainClass, String... args )
+            throws IOException {
+        List<String> command = new ArrayList<> ();
+        command.add ( System.getProperty ( "java.home" ) + File.separator
+                + "bin" + File.separator + "java" );
+        command.add ( "-cp" );
+        command.add ( System.getProperty ( "java.class.path" ) );
+        command.add ( mainClass.getName () );
+        command.addAll ( Arrays.asList ( args ) );
+
+        return new ProcessBuilder ( command ).redirectError (
+                ProcessBuilder.Redirect.INHERIT ).start ();
+    }
+
+    /**
+     * Starts a parameter server on a background thread of this JVM.
+     */
+    private Thread startServer ( ParameterServer server ) {
+        Thread thread = new Thread ( () -> {
+            try {
+                server.serve ();
+            } catch (IOException e) {
+                throw new UncheckedIOException ( e );
+            }
+        } );
+        thread.start ();
+        return thread;
+    }
+
+    /**
+     * Connects a fake worker with no documents that claims <i>rank</i>.
+     */
+    private Socket connectWorker ( int port, int rank ) throws IOException {
+        Socket socket = new Socket ( InetAddress.getLoopbackAddress (), port );
+        DataOutputStream out = new DataOutputStream ( socket.getOutputStream () );
+        out.writeInt ( rank );
+        out.writeInt ( 0 );
+        out.writeInt ( 0 );
+        out.flush ();
+        return socket;
+    }
+
+    /**
+     * Runs a coordinator against fake workers claiming <i>ranks</i> and checks
+     * that the run fails and still stops the parameter server.
+     */
+    private void assertRunFailsAndStopsServer ( int workerCount, int... ranks )
+            throws Exception {
+        ParameterServer server = new ParameterServer ( 0 );
+        Thread thread = startServer ( server );
+        DistributedLda lda = new DistributedLda ( new LdaConfig (),
+                Arrays.asList ( new InetSocketAddress ( InetAddress
+                        .getLoopbackAddress (), server.getPort () ) ),
+                workerCount, InetAddress.getLoopbackAddress (), 0, 1000 );
+
+        List<Socket> workers = new ArrayList<> ();
+        boolean failed = false;
+        try {
+            for (int rank : ranks)
+                workers.add ( connectWorker ( lda.getPort (), rank ) );
+            lda.runLda ();
+        } catch (IOException e) {
+            failed = true;
+        } finally {
+            for (Socket worker : workers)
+                worker.close ();
+        }
+
+        thread.join ( 10000 );
+        assertThat ( failed ).isTrue ();
+        assertThat ( thread.isAlive () ).isFalse ();
+    }
+
+    @Test(timeout = 30000)
+    public void testDuplicateWorkerRank () throws Exception {
+        assertRunFailsAndStopsServer ( 2, 0, 0 );
+    }
+
+    @Test(timeout = 30000)
+    public void testInvalidWorkerRank () throws Exception {
+        assertRunFailsAndStopsServer ( 1, 1 );
+    }
+
+    @Test(timeout = 30000)
+    public void testMissingWorker () throws Exception {
+        assertRunFailsAndStopsServer ( 2, 0 );
+    }
+
+    @Test(timeout = 30000)
+    public void testShutdownFailureIsSuppressed () throws Exception {
+        // Nothing listens on a port that was just released.
+        ServerSocket unused = new ServerSocket ( 0, 0, InetAddress
+                .getLoopbackAddress () );
+        unused.close ();
+
+        DistributedLda lda = new DistributedLda ( new LdaConfig (),
+                Arrays.asList ( new InetSocketAddress ( InetAddress
+                        .getLoopbackAddress (), unused.getLocalPort () ) ), 1,
+                InetAddress.getLoopbackAddress (), 0, 1000 );
+
+        Socket worker = connectWorker ( lda.getPort (), 0 );
+        IOException failure = null;
+        try {
+            lda.runLda ();
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            worker.close ();
+        }
+
+        assertThat ( failure == null ).isFalse ();
+        assertThat ( failure.getSuppressed ().length ).isEqualTo ( 1 );
+    }
+
+    @Test
+    public void testCloseReleasesPort () throws IOException {
+        DistributedLda lda = new DistributedLda ( new LdaConfig (),
+                Arrays.asList ( new InetSocketAddress ( "127.0.0.1", 4000 ) ),
+                1, 0 );
+        int port = lda.getPort ();
+        lda.close ();
+
+        new ServerSocket ( port, 0, InetAddress.getLoopbackAddress () ).close ();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNonPositiveTimeout () throws IOException {
+        new DistributedLda ( new LdaConfig (),
+                Arrays.asList ( new InetSocketAddress ( "127.0.0.1", 4000 ) ),
+                1, InetAddress.getLoopbackAddress (), 0, 0 );
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoServers () throws IOException {
+        new DistributedLda ( new LdaConfig (),
+                new ArrayList<InetSocketAddress> (), 1, 0 );
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDuplicateServers () throws IOException {
+        InetSocketAddress server = new InetSocketAddress ( "127.0.0.1", 4000 );
+        new DistributedLda ( new LdaConfig (), Arrays.asList ( server, server ),
+                1, 0 );
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoWorkers () throws IOException {
+        new DistributedLda ( new LdaConfig (),
+                Arrays.asList ( new InetSocketAddress ( "127.0.0.1", 4000 ) ),
+                0, 0 );
+    }
+
+    @Test(timeout = 120000)
+    public void testRunLda () throws Exception {
+        List<Process> processes = new ArrayList<> ();
+
+        try {
+            List<InetSocketAddress> servers = new ArrayList<> ();
+            for (int i = 0; i < 2; i++) {
+                Process server = startJvm ( ParameterServer.class, "0" );
+                processes.add ( server );
+
+                BufferedReader reader = new BufferedReader (
+                        new InputStreamReader ( server.getInputStream (),
+                                StandardCharsets.UTF_8 ) );
+                int port = Integer.parseInt ( reader.readLine ().trim () );
+                servers.add ( new InetSocketAddress ( "127.0.0.1", port ) );
+            }
+
+            DistributedLda lda = new DistributedLda ( new LdaConfig ( 1.0,
+                    0.1, 3 ), servers, 3, 0 );
+
+            // Each worker gets one document of each kind.
+            for (int rank = 0; rank < 3; rank++) {
+                File documents = File.createTempFile ( "lda-worker-", ".txt" );
+                documents.deleteOnExit ();
+                Files.write ( documents.toPath (),
+                        Arrays.asList ( POKEMON, JAVA, DERIVATIVE ),
+                        StandardCharsets.UTF_8 );
+
+                processes.add ( startJvm ( LdaWorker.class, "127.0.0.1",
+                        String.valueOf ( lda.getPort () ),
+                        String.valueOf ( rank ), documents.getPath () ) );
+            }
+
+            LdaResult result = lda.runLda ();
+
+            assertThat ( result.numDocuments ).isEqualTo ( 9 );
+            assertThat ( result.numTopics ).isEqualTo ( 3 );
+            assertThat ( result.numTerms ).isEqualTo ( 17 );
+            assertThat ( result.documentTopicProbs.length ).isEqualTo (
+                    result.numDocuments );
+            assertThat ( result.topicTermProbs.length ).isEqualTo (
+                    result.numTopics );
+
+            for (double[] array : result.documentTopicProbs)
+                assertThat ( array.length ).isEqualTo ( result.numTopics );
+
+            for (double[] array : result.topicTermProbs)
+                assertThat ( array.length ).isEqualTo ( result.numTerms );
+
+            String[] topWords = new String[] { "pokémon", "java", "derivative" };
+            for (int kind = 0; kind < 3; kind++) {
+                int topic = result.getTopicForDocument ( kind );
+
+                assertThat ( result.getTopicForDocument ( kind + 3 ) )
+                        .isEqualTo ( topic );
+                assertThat ( result.getTopicForDocument ( kind + 6 ) )
+                        .isEqualTo ( topic );
+                assertThat ( result.getTopNWordsForTopic ( topic, 1 ).get ( 0 ) )
+                        .isEqualTo ( topWords[kind] );
+            }
+
+            for (Process process : processes)
+                assertThat (
+                        process.waitFor ( 30, TimeUnit.SECONDS )
+                                && process.exitValue () == 0 ).isTrue ();
+        } finally {
+            for (Process process : processes)
+                process.destroy ();
+        }
+    }
+}
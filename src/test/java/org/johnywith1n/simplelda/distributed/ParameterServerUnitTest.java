@@ -0,0 +1,73 @@
+package org.johnywith1n.simplelda.distributed;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class ParameterServerUnitTest {
+
+    @Test
+    public void testTermCountNotMultipleOfShardCount () throws IOException {
+        try (ParameterServer server = new ParameterServer ( 0 )) {
+            // Shard 1 of 3 over 8 terms holds terms 1, 4 and 7.
+            server.init ( 1, 3, 2, 8 );
+            server.applyDeltas ( new int[] { 1, 7, 7 }, new int[] { 0, 1, 1 },
+                    new int[] { 2, 3, 1 } );
+
+            int[][] counts = server.readCounts ( new int[] { 1, 4, 7 } );
+
+            assertThat ( counts.length ).isEqualTo ( 4 );
+            assertThat ( counts[0][0] ).isEqualTo ( 2 );
+            assertThat ( counts[0][1] ).isEqualTo ( 4 );
+            assertThat ( counts[1][0] ).isEqualTo ( 2 );
+            assertThat ( counts[2][0] + counts[2][1] ).isEqualTo ( 0 );
+            assertThat ( counts[3][1] ).isEqualTo ( 4 );
+        }
+    }
+
+    @Test
+    public void testLastShardOfUnevenSplit () throws IOException {
+        try (ParameterServer server = new ParameterServer ( 0 )) {
+            // Shard 2 of 3 over 8 terms holds terms 2 and 5 only.
+            server.init ( 2, 3, 2, 8 );
+            server.applyDeltas ( new int[] { 5 }, new int[] { 0 },
+                    new int[] { 1 } );
+
+            assertThat ( server.readCounts ( new int[] { 5 } )[1][0] )
+                    .isEqualTo ( 1 );
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTermPastEndOfShard () throws IOException {
+        try (ParameterServer server = new ParameterServer ( 0 )) {
+            server.init ( 2, 3, 2, 8 );
+            server.applyDeltas ( new int[] { 8 }, new int[] { 0 },
+                    new int[] { 1 } );
+        }
+    }
+
+    @Test
+    public void testFewerTermsThanShards () throws IOException {
+        try (ParameterServer server = new ParameterServer ( 0 )) {
+            // Shard 3 of 4 over 2 terms holds nothing.
+            server.init ( 3, 4, 2, 2 );
+
+            int[][] counts = server.readCounts ( new int[0] );
+
+            assertThat ( counts.length ).isEqualTo ( 1 );
+            assertThat ( counts[0].length ).isEqualTo ( 2 );
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTermFromAnotherShard () throws IOException {
+        try (ParameterServer server = new ParameterServer ( 0 )) {
+            server.init ( 0, 2, 2, 4 );
+            server.applyDeltas ( new int[] { 1 }, new int[] { 0 },
+                    new int[] { 1 } );
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package org.johnywith1n.simplelda.distributed;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class ProtocolUnitTest {
+
+    private DataInputStream lengthPrefix ( int length ) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream ();
+        new DataOutputStream ( bytes ).writeInt ( length );
+        return new DataInputStream ( new ByteArrayInputStream (
+                bytes.toByteArray () ) );
+    }
+
+    @Test
+    public void testReadIntsRoundTrip () throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream ();
+        Protocol.writeInts ( new DataOutputStream ( bytes ), new int[] { 3, -1,
+                7 } );
+
+        int[] values = Protocol.readInts ( new DataInputStream (
+                new ByteArrayInputStream ( bytes.toByteArray () ) ) );
+
+        assertThat ( values.length ).isEqualTo ( 3 );
+        assertThat ( values[0] ).isEqualTo ( 3 );
+        assertThat ( values[1] ).isEqualTo ( -1 );
+        assertThat ( values[2] ).isEqualTo ( 7 );
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadIntsNegativeLength () throws IOException {
+        Protocol.readInts ( lengthPrefix ( -1 ) );
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadIntsOversizedLength () throws IOException {
+        Protocol.readInts ( lengthPrefix ( Protocol.MAX_INTS + 1 ) );
+    }
+
+    @Test
+    public void testWriteDeltasInChunks () throws IOException {
+        // Local terms 0, 1 and 2 are global terms 4, 0 and 2 of a single shard.
+        int[][] deltas = new int[][] { new int[] { 1, -2 }, new int[] { 0, 3 },
+                new int[] { 5, 6 } };
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream ();
+        Protocol.writeDeltas ( new DataOutputStream ( bytes ), deltas,
+                new int[] { 0, 1, 2 }, new int[] { 4, 0, 2 }, 2 );
+
+        try (ParameterServer server = new ParameterServer ( 0 )) {
+            server.init ( 0, 1, 2, 5 );
+
+            DataInputStream in = new DataInputStream ( new ByteArrayInputStream (
+                    bytes.toByteArray () ) );
+            int messages = 0;
+            while (in.available () > 0) {
+                assertThat ( in.readByte () ).isEqualTo ( Protocol.PUSH );
+                int[] terms = Protocol.readInts ( in );
+                assertThat ( terms.length <= 2 ).isTrue ();
+                server.applyDeltas ( terms, Protocol.readInts ( in ),
+                        Protocol.readInts ( in ) );
+                messages++;
+            }
+
+            assertThat ( messages ).isEqualTo ( 3 );
+
+            int[][] counts = server.readCounts ( new int[] { 4, 0, 2 } );
+            assertThat ( counts[0][0] ).isEqualTo ( 6 );
+            assertThat ( counts[0][1] ).isEqualTo ( 7 );
+            assertThat ( counts[1][0] ).isEqualTo ( 1 );
+            assertThat ( counts[1][1] ).isEqualTo ( -2 );
+            assertThat ( counts[2][1] ).isEqualTo ( 3 );
+            assertThat ( counts[3][0] ).isEqualTo ( 5 );
+            assertThat ( counts[3][1] ).isEqualTo ( 6 );
+        }
+
+        for (int[] row : deltas)
+            for (int delta : row)
+                assertThat ( delta ).isEqualTo ( 0 );
+    }
+}